@@ -1,5 +1,18 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.IntStream;
 
 
 public class Bayespam
@@ -18,18 +31,11 @@ public class Bayespam
         int counter_spam    = 0;
         int counter_regular = 0;
 
-        /// Class conditional probabilities.
-        private double regularCCP = 0;
-        private double spamCCP = 0;
-
-        /// Log of Class Conditional Probabilities
+        /// Log of Class Conditional Probabilities; the probabilities themselves are derived on demand.
         private double regularLCCP = 0, spamLCCP = 0;
 
         /// Sets class conditional probabilities.
         public void setCCPs (double nregular, double nspam, double epsilon) {
-            regularCCP = ((counter_regular == 0 ? epsilon : counter_regular) / nregular);
-            spamCCP = ((counter_spam == 0 ? epsilon : counter_spam) / nspam);
-
             setLCCPs(nregular, nspam, epsilon);
         }
 
@@ -41,12 +47,12 @@ public class Bayespam
 
         /// Getter: RegularCCP
         public double getRegularCCP () {
-            return this.regularCCP;
+            return Math.pow(10, this.regularLCCP);
         }
 
         /// Getter: SpamCCP
         public double getSpamCCP () {
-            return this.spamCCP;
+            return Math.pow(10, this.spamLCCP);
         }
 
         /// Getter: RegularLCCP
@@ -59,6 +65,17 @@ public class Bayespam
             return this.spamLCCP;
         }
 
+        /// Returns an independent copy of this counter, probabilities included.
+        public Multiple_Counter copy () {
+            Multiple_Counter copy = new Multiple_Counter();
+
+            copy.counter_spam = counter_spam;
+            copy.counter_regular = counter_regular;
+            copy.regularLCCP = regularLCCP;
+            copy.spamLCCP = spamLCCP;
+            return copy;
+        }
+
         // Increase one of the counters by one
         public void incrementCounter(MessageType type)
         {
@@ -70,6 +87,507 @@ public class Bayespam
         }
     }
     
+    /* *************************** SCAN_PIPELINE *****************************/
+
+    // A staged pipeline that moves messages from a directory listing through a number of
+    // processing stages. Every stage runs on its own threads and hands its output to the next
+    // one through a bounded queue, so a slow stage blocks (backpressure) the ones before it
+    // instead of letting messages pile up in memory.
+    static class Scan_Pipeline
+    {
+        // A message as it moves through the pipeline.
+        static class Scan_Item
+        {
+            File file;
+            String content;
+            List<String> tokens;
+            List<String> recipientTokens;       /// Tokens of the per-recipient headers, if split off.
+            double score;
+        }
+
+        // A processing step, applied to each message passing through a stage.
+        interface Stage
+        {
+            void process (Scan_Item item) throws IOException;
+        }
+
+        // Consumes finished messages on the thread that runs the pipeline.
+        interface Aggregator
+        {
+            void collect (Scan_Item item);
+        }
+
+        /// Marks the end of the stream on a queue.
+        private static final Scan_Item END = new Scan_Item();
+
+        private final int queueDepth;
+        private final List<String> names = new ArrayList<String>();
+        private final List<Integer> widths = new ArrayList<Integer>();
+        private final List<Stage> stages = new ArrayList<Stage>();
+
+        /// First failure of any stage, rethrown once the pipeline has drained. Either an
+        /// IOException or an Error; other exceptions are wrapped in an IOException.
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Scan_Pipeline (int queueDepth) {
+            this.queueDepth = queueDepth;
+        }
+
+        /// Appends a stage running on 'threads' threads.
+        public Scan_Pipeline stage (String name, int threads, Stage stage) {
+            names.add(name);
+            widths.add(Math.max(1, threads));
+            stages.add(stage);
+            return this;
+        }
+
+        /// Walks the files of a directory through all stages and aggregates the results on the
+        /// calling thread. Returns the number of aggregated messages.
+        public int run (final File directory, Aggregator aggregator) throws IOException {
+            BlockingQueue<Scan_Item> in = new ArrayBlockingQueue<Scan_Item>(queueDepth);
+            final BlockingQueue<Scan_Item> walked = in;
+            int n = 0;
+
+            /// Directory walker, listing the directory while the readers already work on its files.
+            startThread("walk", () -> {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+                    for (Iterator<Path> it = entries.iterator(); it.hasNext() && failure.get() == null;) {
+                        Scan_Item item = new Scan_Item();
+                        item.file = it.next().toFile();
+                        walked.put(item);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    fail(directory, e);
+                } finally {
+                    walked.put(END);
+                }
+            });
+
+            /// Processing stages, each feeding the next.
+            for (int i = 0; i < stages.size(); i++) {
+                BlockingQueue<Scan_Item> out = new ArrayBlockingQueue<Scan_Item>(queueDepth);
+                startStage(names.get(i), widths.get(i), stages.get(i), in, out);
+                in = out;
+            }
+
+            /// Result aggregator.
+            try {
+                for (Scan_Item item; (item = in.take()) != END; n++) {
+                    aggregator.collect(item);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while scanning messages");
+            }
+
+            Throwable e = failure.get();
+            if (e instanceof Error) {
+                throw (Error) e;
+            } else if (e != null) {
+                throw (IOException) e;
+            }
+            return n;
+        }
+
+        /// Records the first failure; the pipeline keeps draining so END still reaches the aggregator.
+        private void fail (File file, Throwable e) {
+            if (!(e instanceof IOException || e instanceof Error)) {
+                e = new IOException(file + ": " + e, e);
+            }
+            failure.compareAndSet(null, e);
+        }
+
+        /// Starts the workers of one stage. The last worker to finish forwards END downstream.
+        /// Once anything failed, the remaining messages are drained without being processed.
+        private void startStage (String name, int threads, final Stage stage,
+                                 final BlockingQueue<Scan_Item> in, final BlockingQueue<Scan_Item> out) {
+            final AtomicInteger running = new AtomicInteger(threads);
+
+            for (int i = 0; i < threads; i++) {
+                startThread(name + "-" + (i + 1), () -> {
+                    try {
+                        for (Scan_Item item; (item = in.take()) != END;) {
+                            if (failure.get() != null) {
+                                continue;
+                            }
+                            try {
+                                stage.process(item);
+                            } catch (Throwable e) {
+                                fail(item.file, e);             /// Drop the message, keep draining.
+                                continue;
+                            }
+                            out.put(item);
+                        }
+                        in.put(END);                            /// Let sibling workers see it too.
+                    } finally {
+                        if (running.decrementAndGet() == 0) {
+                            out.put(END);
+                        }
+                    }
+                });
+            }
+        }
+
+        // Body of a pipeline thread.
+        private interface Worker
+        {
+            void run () throws InterruptedException;
+        }
+
+        private static void startThread (String name, final Worker worker) {
+            Thread thread = new Thread(() -> {
+                try {
+                    worker.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "bayespam-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /* *************************** VERDICT_CACHE *****************************/
+
+    // Remembers the score of recently classified messages, keyed by a fingerprint of all their
+    // tokens except those of the headers that differ per recipient (To:, Date:, Received:, ...),
+    // so copies of the same message (e.g. a spam campaign) skip scoring. The remembered score
+    // leaves out those headers too; cachedScore() adds their words back on every lookup. With a
+    // distance > 0, the fingerprint is a 64 bit SimHash and near-duplicates within that Hamming
+    // distance also hit. Entries are dropped whenever the model version changes.
+    static class Verdict_Cache
+    {
+        /// SimHash lookups split the fingerprint into this many bands; with a distance < BANDS,
+        /// a near-duplicate is guaranteed to match one band exactly.
+        static final int BANDS = 4;
+        private static final int BAND_BITS = 64 / BANDS;
+
+        private final int capacity;
+        private final int maxDistance;
+        private final LinkedHashMap<Long, Double> entries;
+        private final HashMap<Long, List<Long>> bands = new HashMap<Long, List<Long>>();
+
+        private long version = -1;
+        private long hits = 0, misses = 0;
+
+        /// Eviction is either "lru" (least recently used) or "fifo" (oldest inserted).
+        Verdict_Cache (int capacity, String eviction, int maxDistance) {
+            this.capacity = capacity;
+            this.maxDistance = maxDistance;
+            this.entries = new LinkedHashMap<Long, Double>(16, 0.75f, eviction.equals("lru")) {
+                protected boolean removeEldestEntry (Map.Entry<Long, Double> eldest) {
+                    if (size() <= Verdict_Cache.this.capacity) {
+                        return false;
+                    }
+                    unindex(eldest.getKey());
+                    return true;
+                }
+            };
+        }
+
+        /// Fingerprints a token stream, in time linear in its length.
+        public long fingerprint (List<String> tokens) {
+            return (maxDistance == 0) ? exactHash(tokens) : simHash(tokens);
+        }
+
+        /// Returns the cached score of a fingerprint, or null on a miss.
+        public synchronized Double lookup (long fingerprint, long modelVersion) {
+            invalidateIfStale(modelVersion);
+
+            Double score = entries.get(fingerprint);
+            if (score == null && maxDistance > 0) {
+                score = nearest(fingerprint);
+            }
+
+            if (score == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return score;
+        }
+
+        /// Caches the score of a fingerprint computed with the given model version.
+        public synchronized void store (long fingerprint, double score, long modelVersion) {
+            invalidateIfStale(modelVersion);
+
+            if (entries.put(fingerprint, score) == null && maxDistance > 0) {
+                for (int band = 0; band < BANDS; band++) {
+                    bands.computeIfAbsent(bandKey(fingerprint, band), k -> new ArrayList<Long>()).add(fingerprint);
+                }
+            }
+        }
+
+        /// Fraction of lookups that were served from the cache.
+        public synchronized double hitRate () {
+            return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+        }
+
+        /// Prints size and hit rate of the cache.
+        public synchronized void printStats () {
+            System.out.println("Verdict cache: " + entries.size() + "/" + capacity + " entries, " + hits + " hits, " +
+                               misses + " misses (" + String.format(Locale.ROOT, "%.2f", 100 * hitRate()) + "% hit rate)");
+        }
+
+        /// Finds a cached fingerprint within maxDistance bits through the band index.
+        private Double nearest (long fingerprint) {
+            for (int band = 0; band < BANDS; band++) {
+                List<Long> candidates = bands.get(bandKey(fingerprint, band));
+                if (candidates == null) {
+                    continue;
+                }
+                for (long candidate : candidates) {
+                    if (Long.bitCount(candidate ^ fingerprint) <= maxDistance) {
+                        return entries.get(candidate);
+                    }
+                }
+            }
+            return null;
+        }
+
+        /// Drops all entries if they were computed with an older model.
+        private void invalidateIfStale (long modelVersion) {
+            if (modelVersion != version) {
+                entries.clear();
+                bands.clear();
+                version = modelVersion;
+            }
+        }
+
+        private void unindex (long fingerprint) {
+            if (maxDistance == 0) {
+                return;
+            }
+            for (int band = 0; band < BANDS; band++) {
+                long key = bandKey(fingerprint, band);
+                List<Long> candidates = bands.get(key);
+                candidates.remove(fingerprint);
+                if (candidates.isEmpty()) {
+                    bands.remove(key);
+                }
+            }
+        }
+
+        /// Band number in the upper bits, band content in the lower ones.
+        private static long bandKey (long fingerprint, int band) {
+            long bits = (fingerprint >>> (band * BAND_BITS)) & ((1L << BAND_BITS) - 1);
+            return ((long) band << BAND_BITS) | bits;
+        }
+
+        /// FNV-1a over the whole token stream, tokens separated by a 0 char.
+        private static long exactHash (List<String> tokens) {
+            long hash = 0xcbf29ce484222325L;
+
+            for (String token : tokens) {
+                for (int i = 0, n = token.length(); i < n; i++) {
+                    hash = (hash ^ token.charAt(i)) * 0x100000001b3L;
+                }
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        /// 64 bit SimHash: every bit is the majority vote of that bit over all token hashes.
+        private static long simHash (List<String> tokens) {
+            int[] votes = new int[64];
+            long fingerprint = 0;
+
+            for (String token : tokens) {
+                long hash = tokenHash(token);
+                for (int bit = 0; bit < 64; bit++) {
+                    votes[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+                }
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                if (votes[bit] > 0) {
+                    fingerprint |= 1L << bit;
+                }
+            }
+            return fingerprint;
+        }
+
+        /// FNV-1a of a single token, finished with a mixer so all bits depend on all chars.
+        private static long tokenHash (String token) {
+            long hash = 0xcbf29ce484222325L;
+
+            for (int i = 0, n = token.length(); i < n; i++) {
+                hash = (hash ^ token.charAt(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+            hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return hash ^ (hash >>> 33);
+        }
+    }
+
+    /* ***************************** EVALUATION ******************************/
+
+    // Collects the score (posterior_regular - posterior_spam, a log10 odds) of every test
+    // message once, and derives the confusion matrix, precision/recall and the full ROC curve
+    // from the sorted scores without classifying anything again. Spam is the positive class:
+    // a message is flagged as spam when its score is <= the threshold. Scores are kept in
+    // primitive arrays and per-message rows are streamed to disk, so large corpora fit.
+    static class Evaluation implements Closeable
+    {
+        private double[] regularScores = new double[1024];
+        private double[] spamScores = new double[1024];
+        private int nregular = 0, nspam = 0;
+
+        /// Confusion matrix at the default threshold (0).
+        private int truePositives = 0, falseNegatives = 0, falsePositives = 0, trueNegatives = 0;
+
+        /// Output files are '<prefix>-messages.csv', '<prefix>-roc.csv' and '<prefix>-summary.json'.
+        private final String prefix;
+        private final PrintWriter messages;
+
+        /// A null prefix only prints the summary.
+        Evaluation (String prefix) throws IOException {
+            this.prefix = prefix;
+            this.messages = (prefix == null) ? null : writer(prefix + "-messages.csv");
+
+            if (messages != null) {
+                messages.println("file,label,score,verdict");
+            }
+        }
+
+        /// Records the score of a message whose actual type is known.
+        public void record (File file, MessageType type, double score) {
+            MessageType verdict = verdict(score);
+            double rank = Double.isNaN(score) ? Double.NEGATIVE_INFINITY : score;   /// NaN is always flagged as spam.
+
+            if (type == MessageType.SPAM) {
+                spamScores = append(spamScores, nspam++, rank);
+                if (verdict == MessageType.SPAM) truePositives++; else falseNegatives++;
+            } else {
+                regularScores = append(regularScores, nregular++, rank);
+                if (verdict == MessageType.SPAM) falsePositives++; else trueNegatives++;
+            }
+
+            if (messages != null) {
+                messages.println(csvField(file.getPath()) + "," + type + "," + score + "," + verdict);
+            }
+        }
+
+        /// Number of correctly classified messages at the default threshold.
+        public int correct () {
+            return truePositives + trueNegatives;
+        }
+
+        /// Fraction of correctly classified messages at the default threshold.
+        public double accuracy () {
+            return ratio(correct(), nspam + nregular);
+        }
+
+        /// Sweeps the ROC curve, prints the summary and writes the output files.
+        public void finish () throws IOException {
+            PrintWriter roc = (prefix == null) ? null : writer(prefix + "-roc.csv");
+            double auc = 0, lastTpr = 0, lastFpr = 0;
+            int i = 0, j = 0;
+
+            Arrays.parallelSort(spamScores, 0, nspam);
+            Arrays.parallelSort(regularScores, 0, nregular);
+
+            /// Every distinct score is a threshold; walk both sorted arrays in a single merge pass.
+            if (roc != null) {
+                roc.println("threshold,true_positive_rate,false_positive_rate,precision,false_accepts,false_rejects");
+                roc.println(Double.NEGATIVE_INFINITY + ",0.0,0.0," + ratio(0, 0) + "," + nspam + ",0");  /// (0,0): nothing flagged
+            }
+            while (i < nspam || j < nregular) {
+                double threshold = Math.min(i < nspam ? spamScores[i] : Double.POSITIVE_INFINITY,
+                                            j < nregular ? regularScores[j] : Double.POSITIVE_INFINITY);
+                while (i < nspam && spamScores[i] <= threshold) i++;
+                while (j < nregular && regularScores[j] <= threshold) j++;
+
+                double tpr = ratio(i, nspam), fpr = ratio(j, nregular);
+                auc += (fpr - lastFpr) * (tpr + lastTpr) / 2;
+                lastTpr = tpr;
+                lastFpr = fpr;
+
+                if (roc != null) {
+                    roc.println(threshold + "," + tpr + "," + fpr + "," + ratio(i, i + j) + "," + (nspam - i) + "," + j);
+                }
+            }
+            if (roc != null) {
+                close(roc, prefix + "-roc.csv");
+            }
+
+            double precision = ratio(truePositives, truePositives + falsePositives);
+            double recall = ratio(truePositives, truePositives + falseNegatives);
+            double accuracy = accuracy();
+
+            System.out.println("Confusion matrix (spam positive): TP " + truePositives + ", FN " + falseNegatives +
+                               ", FP " + falsePositives + ", TN " + trueNegatives);
+            System.out.println("Precision: " + precision + ", Recall: " + recall + ", Accuracy: " + accuracy +
+                               ", ROC AUC: " + auc);
+
+            if (prefix == null) {
+                return;
+            }
+            close(messages, prefix + "-messages.csv");
+
+            PrintWriter summary = writer(prefix + "-summary.json");
+            summary.println("{");
+            summary.println("  \"messages\": " + (nspam + nregular) + ",");
+            summary.println("  \"regular\": " + nregular + ",");
+            summary.println("  \"spam\": " + nspam + ",");
+            summary.println("  \"threshold\": 0.0,");
+            summary.println("  \"true_positives\": " + truePositives + ",");
+            summary.println("  \"false_negatives\": " + falseNegatives + ",");
+            summary.println("  \"false_positives\": " + falsePositives + ",");
+            summary.println("  \"true_negatives\": " + trueNegatives + ",");
+            summary.println("  \"false_accepts\": " + falseNegatives + ",");
+            summary.println("  \"false_rejects\": " + falsePositives + ",");
+            summary.println("  \"precision\": " + precision + ",");
+            summary.println("  \"recall\": " + recall + ",");
+            summary.println("  \"accuracy\": " + accuracy + ",");
+            summary.println("  \"roc_auc\": " + auc);
+            summary.println("}");
+            close(summary, prefix + "-summary.json");
+        }
+
+        /// Releases the per-message output if the evaluation ends without finish(), e.g. when a
+        /// scan fails. Does nothing after finish().
+        public void close () {
+            if (messages != null) {
+                messages.close();
+            }
+        }
+
+        private static PrintWriter writer (String path) throws IOException {
+            return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)));
+        }
+
+        /// Closes a writer, failing if anything written to it was lost (PrintWriter swallows I/O errors).
+        private static void close (PrintWriter writer, String path) throws IOException {
+            writer.close();
+            if (writer.checkError()) {
+                throw new IOException("Failed to write " + path);
+            }
+        }
+
+        /// Stores a value at index 'n', growing the array when it is full.
+        private static double[] append (double[] values, int n, double value) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, 2 * n);
+            }
+            values[n] = value;
+            return values;
+        }
+
+        private static double ratio (double a, double b) {
+            return (b == 0) ? 0 : a / b;
+        }
+
+        /// Quotes a CSV field if it contains a separator or quote.
+        private static String csvField (String value) {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+                return value;
+            }
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+    }
+
     /* **************************** PROPERTIES *******************************/
 
     /// Train and Test Directories.
@@ -80,16 +598,56 @@ public class Bayespam
     private static double epsilon           = 1.0;
     private static int minWordLength        = 4;
 
-    // Listings of the two subdirectories (regular/ and spam/)
-    private static File[] listing_regular = new File[0];
-    private static File[] listing_spam = new File[0];
+    /// Feature Selection (disabled unless a feature count or score threshold is given).
+    private static int maxFeatures          = 0;
+    private static double minFeatureScore   = 0;
+    private static String featureMetric     = "ig";
+
+    /// Minimum untimed warm-up and timed passes (count and duration) of a throughput comparison.
+    private static final int WARMUP_RUNS    = 4;
+    private static final int TIMED_RUNS     = 5;
+    private static final long WARMUP_NANOS  = 1000000000L;
+    private static final long TIMED_NANOS   = 2000000000L;
+
+    /// Scan Pipeline: threads per stage and queue depth between stages.
+    private static int readerThreads        = 4;
+    private static int tokenizerThreads     = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static int scorerThreads        = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static int queueDepth           = 64;
+
+    /// Verdict Cache (disabled unless a capacity is given).
+    private static int cacheCapacity        = 0;
+    private static String cacheEviction     = "lru";
+    private static int cacheDistance        = 0;
+    private static Verdict_Cache verdictCache = null;
+
+    /// Evaluation output prefix (null prints the summary only).
+    private static String evaluationPrefix  = null;
+
+    /// Model image to write once the model is built (null writes none).
+    private static String modelImagePath    = null;
+
+    /// Model image file identification ("BSPM") and layout version.
+    private static final int IMAGE_MAGIC    = 0x4253504d;
+    private static final int IMAGE_VERSION  = 3;                /// 2: Unicode normalized tokens, 3: folded final sigma.
+
+    /// Size of an image entry with an empty word: length, two counts and two LCCPs.
+    private static final int IMAGE_ENTRY_BYTES = 4 + 2 * 4 + 2 * 8;
+
+    /// Incremented whenever the model changes, invalidating cached verdicts.
+    private static volatile long modelVersion = 0;
+
+    // The two subdirectories (regular/ and spam/), listed while they are scanned
+    private static File directory_regular = null;
+    private static File directory_spam = null;
 
     /// Prior Probabilities.
     static double  logPrior_regular        = 0;
     static double logPrior_spam            = 0;
 
     // A hash table for the vocabulary (word searching is very fast in a hash table)
-    private static Hashtable <String, Multiple_Counter> vocab = new Hashtable <String, Multiple_Counter> ();
+    // Lookups take no lock, so the scorer threads don't serialize on it.
+    private static ConcurrentHashMap <String, Multiple_Counter> vocab = new ConcurrentHashMap <String, Multiple_Counter> ();
 
     /* ************************* BAYESPAM METHODS ****************************/
 
@@ -127,6 +685,52 @@ public class Bayespam
         return n;
     }
 
+    /* **************************** NORMALIZATION ****************************/
+
+    /// Tokens are normalized identically on every host, whatever its default locale: NFKC, then
+    /// case folding, then NFKC again as folding may leave unnormalized sequences. Folding is
+    /// approximated by upper, then lower casing in the root locale (so e.g. U+00DF sharp s becomes
+    /// "ss"), plus mapping final sigma to sigma, which lower casing alone keeps at word ends.
+    private static final Locale TOKEN_LOCALE = Locale.ROOT;
+
+    /// Lower case variant of every ASCII char, and whether it is a letter.
+    private static final char[] ASCII_LOWER = new char[128];
+    private static final boolean[] ASCII_LETTER = new boolean[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            ASCII_LOWER[c] = (c >= 'A' && c <= 'Z') ? (char) (c - 'A' + 'a') : c;
+            ASCII_LETTER[c] = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+        }
+    }
+
+    /// Normalizes a token. Pure ASCII tokens are lower cased through the table alone; the
+    /// full Unicode path is only taken once a non-ASCII char shows up.
+    public static String normalize (String token) {
+        char[] chars = token.toCharArray();
+        boolean changed = false;
+
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 128) {
+                return foldUnicode(token);
+            }
+            if (ASCII_LOWER[c] != c) {
+                chars[i] = ASCII_LOWER[c];
+                changed = true;
+            }
+        }
+        return changed ? new String(chars) : token;
+    }
+
+    /// Unicode path of normalize().
+    private static String foldUnicode (String token) {
+        String folded = Normalizer.normalize(token, Normalizer.Form.NFKC);
+
+        folded = folded.toUpperCase(TOKEN_LOCALE).toLowerCase(TOKEN_LOCALE).replace('\u03c2', '\u03c3');
+        return Normalizer.normalize(folded, Normalizer.Form.NFKC);
+    }
+
     /* ************************** CCP/VALIDATION *****************************/
 
     /// Sets all class conditional probabilities.
@@ -139,68 +743,253 @@ public class Bayespam
             counter = vocab.get(e.nextElement());
             counter.setCCPs(nregular, nspam, epsilon);
         }
+        modelVersion++;
+    }
+
+    /// Whether a code point is a combining mark (e.g. the U+0307 dot above that a capital dotted I
+    /// lower cases to), which may follow a letter within a word.
+    private static boolean isCombiningMark (int c) {
+        int type = Character.getType(c);
+
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK ||
+               type == Character.ENCLOSING_MARK;
     }
 
     /// Returns True if the word
-    /// 1. Has length >= 4
-    /// 2. Is only composed of letters.
+    /// 1. Has length >= 4 (in letters, combining marks don't count)
+    /// 2. Is only composed of letters, each optionally followed by combining marks.
     private static Boolean isValidWord (String word) {
-        int i, n;
+        int i, n, letters, point;
+        char c;
 
+        /// A word is never shorter in UTF-16 chars than in letters.
         if ((n = word.length()) < minWordLength) {
             return false;
         }
-        for (i = 0; i < n; i++) {
-            if (Character.isLetter(word.charAt(i)) == false) {
+
+        /// ASCII prefix, checked through the table.
+        for (i = 0; i < n && (c = word.charAt(i)) < 128; i++) {
+            if (ASCII_LETTER[c] == false) {
                 return false;
             }
         }
-        return true;
+        if (i == n) {
+            return true;
+        }
+
+        /// Otherwise check the remaining code points, so supplementary letters count once.
+        for (letters = i; i < n; i += Character.charCount(point)) {
+            point = word.codePointAt(i);
+            if (Character.isLetter(point)) {
+                letters++;
+            } else if (letters == 0 || !isCombiningMark(point)) {
+                return false;
+            }
+        }
+        return letters >= minWordLength;
     }
 
-    /* *************************** CLASSIFICATION ****************************/
+    /* ************************* FEATURE SELECTION ***************************/
 
-    /// Classifies new messages as either Normal or Spam.
-    public static MessageType classify (File file) throws IOException {
-        FileInputStream i_s = new FileInputStream(file);
-        BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-        String line, word;
-        double posterior_spam = logPrior_spam, posterior_regular = logPrior_regular;
-	int count = 0;
-        while ((line = in.readLine()) != null) {
-            StringTokenizer st = new StringTokenizer(line);         
-            
-            while (st.hasMoreTokens()) {
-                word = st.nextToken().toLowerCase();
-                if (vocab.containsKey(word)) {
-		    count++;
-                    posterior_regular += vocab.get(word).getRegularLCCP();
-                    posterior_spam    += vocab.get(word).getSpamLCCP();
-                }                
+    /// Information gain (mutual information, in bits) between the presence of a feature
+    /// and the message class. Every counted word is treated as one sample.
+    private static double informationGain (Multiple_Counter counter, double nregular, double nspam) {
+        double n = nregular + nspam;
+        double a = counter.counter_regular, b = counter.counter_spam;   /// Feature present.
+        double c = nregular - a, d = nspam - b;                         /// Feature absent.
+
+        return mutualTerm(a, a + b, nregular, n) + mutualTerm(b, a + b, nspam, n) +
+               mutualTerm(c, c + d, nregular, n) + mutualTerm(d, c + d, nspam, n);
+    }
+
+    /// A single cell of the mutual information sum: p(f,c) * log2(p(f,c) / (p(f) * p(c))).
+    private static double mutualTerm (double joint, double feature, double type, double n) {
+        if (joint == 0) {
+            return 0;
+        }
+        return (joint / n) * (Math.log((n * joint) / (feature * type)) / Math.log(2));
+    }
+
+    /// Chi-square statistic of the 2x2 feature/class contingency table.
+    private static double chiSquare (Multiple_Counter counter, double nregular, double nspam) {
+        double n = nregular + nspam;
+        double a = counter.counter_regular, b = counter.counter_spam;
+        double c = nregular - a, d = nspam - b;
+        double denominator = (a + b) * (c + d) * nregular * nspam;
+
+        if (denominator == 0) {
+            return 0;
+        }
+        return n * (a * d - b * c) * (a * d - b * c) / denominator;
+    }
+
+    /// Ranks all words by the selected metric and removes those outside the top 'maxFeatures'
+    /// (if > 0) or scoring below 'minScore'. Scores are computed in parallel.
+    public static void selectFeatures (int maxFeatures, double minScore) {
+        final double nregular = wordCount(MessageType.NORMAL);
+        final double nspam = wordCount(MessageType.SPAM);
+        final boolean chi = featureMetric.equals("chi");
+
+        final List<String> words = new ArrayList<String>(vocab.keySet());
+        final double[] scores = new double[words.size()];
+        Integer[] order = new Integer[words.size()];
+
+        /// Score every word.
+        IntStream.range(0, scores.length).parallel().forEach(i -> {
+            Multiple_Counter counter = vocab.get(words.get(i));
+            scores[i] = chi ? chiSquare(counter, nregular, nspam) : informationGain(counter, nregular, nspam);
+        });
+
+        /// Rank words by descending score.
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Double.compare(scores[y], scores[x]));
+
+        /// Drop everything below the cut.
+        int keep = (maxFeatures > 0) ? Math.min(maxFeatures, order.length) : order.length;
+        for (int i = 0; i < order.length; i++) {
+            if (i >= keep || scores[order[i]] < minScore) {
+                vocab.remove(words.get(order[i]));
             }
         }
-        in.close();       
-        //System.out.println(file.getName() + " contains " + count + " words from the hash-table");
-        return (posterior_regular > posterior_spam ? MessageType.NORMAL : MessageType.SPAM);
+        modelVersion++;
     }
 
-    /// Determines the ratio of email classifications for files in a given directory. 
-    public static void directoryClassifier (MessageType type) throws IOException {
-        int spam = 0, regular = 0;
+    /// Classifies the test directory and returns the fraction of correctly classified messages.
+    /// Evaluation output, if any, is written with the given tag appended to the prefix.
+    public static double evaluateModel (String tag) throws IOException {
+        try (Evaluation evaluation = new Evaluation(evaluationPrefix == null ? null : evaluationPrefix + "-" + tag)) {
+            directoryClassifier(MessageType.NORMAL, evaluation);
+            directoryClassifier(MessageType.SPAM, evaluation);
+            evaluation.finish();
+            System.out.println();
+            return evaluation.accuracy();
+        }
+    }
 
-        /// Create list of all files in directory.
-        File[] files = (type == MessageType.SPAM ? listing_spam : listing_regular);
+    /// Measures the classification throughput (messages/s) of two models over the test directory.
+    /// Passes alternate between the models, so JIT warm-up and other drift during the run weigh
+    /// on both alike; untimed warm-up passes of both run first.
+    public static double[] compareThroughput (ConcurrentHashMap <String, Multiple_Counter> first, ConcurrentHashMap <String, Multiple_Counter> second) throws IOException {
+        ConcurrentHashMap <String, Multiple_Counter> current = vocab;
+        long[] nanos = new long[2], messages = new long[2];
+        int runs;
+        long start;
+
+        try {
+            start = System.nanoTime();
+            for (runs = 0; runs < WARMUP_RUNS || System.nanoTime() - start < WARMUP_NANOS; runs++) {
+                vocab = (runs % 2 == 0) ? first : second;
+                scanTestMessages();
+            }
 
-        /// Classify all files.
-        for (int i = 0; i < files.length; i++) {
-            if (classify(files[i]) == MessageType.SPAM) {
-                spam++;
-            } else {
-                regular++;
+            for (runs = 0; runs < 2 * TIMED_RUNS || nanos[0] + nanos[1] < TIMED_NANOS; runs++) {
+                vocab = (runs % 2 == 0) ? first : second;
+                start = System.nanoTime();
+                messages[runs % 2] += scanTestMessages();
+                nanos[runs % 2] += System.nanoTime() - start;
+            }
+        } finally {
+            vocab = current;
+        }
+        return new double[] { messages[0] / (nanos[0] / 1e9), messages[1] / (nanos[1] / 1e9) };
+    }
+
+    /// Returns a copy of the vocabulary that later changes to the model don't affect.
+    private static ConcurrentHashMap <String, Multiple_Counter> copyVocab () {
+        ConcurrentHashMap <String, Multiple_Counter> copy = new ConcurrentHashMap <String, Multiple_Counter> (vocab.size() * 4 / 3 + 1);
+
+        for (Map.Entry<String, Multiple_Counter> entry : vocab.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    /// Prints model size, throughput and accuracy of one model.
+    private static void reportModel (String label, int features, double throughput, double accuracy) {
+        System.out.println(label + ": " + features + " features, " +
+                           String.format(Locale.ROOT, "%.1f", throughput) + " messages/s, accuracy " +
+                           String.format(Locale.ROOT, "%.2f", 100.0 * accuracy) + "%");
+    }
+
+    /// Scores all test messages, bypassing the verdict cache (it would serve every repeated pass).
+    /// Returns the number of messages scored.
+    private static int scanTestMessages () throws IOException {
+        return scanPipeline(false, false).run(directory_regular, item -> {}) +
+               scanPipeline(false, false).run(directory_spam, item -> {});
+    }
+
+    /* *************************** CLASSIFICATION ****************************/
+
+    /// Returns the verdict for a score (posterior_regular - posterior_spam).
+    public static MessageType verdict (double score) {
+        return (score > 0 ? MessageType.NORMAL : MessageType.SPAM);
+    }
+
+    /// Adds the log odds (regular - spam) of every known word among the tokens to 'score'.
+    private static double addWords (double score, List<String> tokens) {
+        Multiple_Counter counter;
+
+        for (String word : tokens) {
+            if ((counter = vocab.get(word)) != null) {
+                score += counter.getRegularLCCP() - counter.getSpamLCCP();
             }
         }
+        return score;
+    }
+
+    /// Returns posterior_regular - posterior_spam for a tokenized message, split as by
+    /// tokenizeMessage().
+    public static double score (List<String> tokens, List<String> recipientTokens) {
+        return addWords(addWords(logPrior_regular - logPrior_spam, tokens), recipientTokens);
+    }
+
+    /// Like score(), but serves repeated messages from the verdict cache when it is enabled.
+    /// Only 'tokens' is fingerprinted; the words of 'recipientTokens' are added after the lookup,
+    /// in the same order as score() adds them, so an exact hit returns the very same score.
+    public static double cachedScore (List<String> tokens, List<String> recipientTokens) {
+        if (verdictCache == null || tokens.isEmpty()) {
+            return score(tokens, recipientTokens);
+        }
+
+        long version = modelVersion, fingerprint = verdictCache.fingerprint(tokens);
+        Double cached = verdictCache.lookup(fingerprint, version);
+        if (cached == null) {
+            cached = addWords(logPrior_regular - logPrior_spam, tokens);
+            verdictCache.store(fingerprint, cached, version);
+        }
+        return addWords(cached, recipientTokens);
+    }
+
+    /// Scores the content of a message, through the verdict cache when it is enabled.
+    private static double cachedScore (String content) {
+        List<String> tokens = new ArrayList<String>(), recipientTokens = new ArrayList<String>();
+
+        tokenizeMessage(content, tokens, recipientTokens);
+        return cachedScore(tokens, recipientTokens);
+    }
+
+    /// Classifies new messages as either Normal or Spam.
+    public static MessageType classify (File file) throws IOException {
+        return verdict(cachedScore(readMessage(file)));
+    }
+
+    /// Determines the ratio of email classifications for files in a given directory,
+    /// recording every score in the evaluation.
+    public static void directoryClassifier (final MessageType type, final Evaluation evaluation) throws IOException {
+        final int[] tally = new int[MessageType.values().length];
+
+        File directory = (type == MessageType.SPAM ? directory_spam : directory_regular);
+
+        /// Classify all files.
+        scanPipeline(false).run(directory, item -> {
+            tally[verdict(item.score).ordinal()]++;
+            evaluation.record(item.file, type, item.score);
+        });
 
         /// Print ratio.
+        int spam = tally[MessageType.SPAM.ordinal()], regular = tally[MessageType.NORMAL.ordinal()];
         String listingType = (type == MessageType.SPAM) ? "Spam" : "Regular";
         System.out.println(listingType + " has " + spam + " spam files and " + regular + " regular ones.");
     }
@@ -220,40 +1009,101 @@ public class Bayespam
         vocab.put(word, counter);                       // put the word with its counter into the hashtable
     }
 
-    // Read the words from messages and add them to your vocabulary. The boolean type determines whether the messages are regular or not  
-    private static void readMessages (MessageType type)
-    throws IOException
-    {
-        File[] messages = new File[0];
+    /// Reads the whole content of a message, decoded as UTF-8 whatever the host's default.
+    private static String readMessage (File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
 
-        if (type == MessageType.NORMAL){
-            messages = listing_regular;
-        } else {
-            messages = listing_spam;
+    /// Splits a message into normalized words. When training, only valid words are kept.
+    private static List<String> tokenize (String content, boolean training) {
+        List<String> tokens = new ArrayList<String>();
+
+        addTokens(content, training, tokens);
+        return tokens;
+    }
+
+    /// Adds the normalized words of 'text' to 'tokens'. When training, only valid words are kept.
+    private static void addTokens (String text, boolean training, List<String> tokens) {
+        StringTokenizer st = new StringTokenizer(text);
+        String word;
+
+        while (st.hasMoreTokens()) {
+            word = normalize(st.nextToken());                       /// add only the normalized variant.
+            if (!training || isValidWord(word)) {
+                tokens.add(word);
+            }
         }
-        
-        for (int i = 0; i < messages.length; ++i)
-        {
-            FileInputStream i_s = new FileInputStream( messages[i] );
-            BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-            String line;
-            String word;
-            
-            while ((line = in.readLine()) != null)                      // read a line
-            {
-                StringTokenizer st = new StringTokenizer(line);         // parse it into words
-        
-                while (st.hasMoreTokens())                              // while there are still words left..
-                {
-                    word = st.nextToken().toLowerCase();                /// add only lower case variant.
-                    if (isValidWord(word)) {
-                        addWord(word, type);              
-                    }                
-                }
+    }
+
+    /// Header fields that differ between copies of a message sent to different recipients.
+    private static final Set<String> RECIPIENT_HEADERS = new HashSet<String>(Arrays.asList(
+        "to", "date", "received", "message-id", "return-path"));
+
+    /// Splits a message for classification: the words of the per-recipient headers, their
+    /// continuation lines and the mbox "From " envelope line go to 'recipientTokens', all other
+    /// words (Subject:, From:, the body, ...) to 'tokens'. The headers end at the first blank line.
+    private static void tokenizeMessage (String content, List<String> tokens, List<String> recipientTokens) {
+        int start = 0, end;
+        boolean perRecipient = false;
+        String line;
+
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            line = content.substring(start, end);
+            if (line.trim().isEmpty()) {
+                break;
+            }
+            if (line.charAt(0) != ' ' && line.charAt(0) != '\t') {    /// not a continuation line
+                int colon = line.indexOf(':');
+                perRecipient = (start == 0 && line.startsWith("From "))
+                    || (colon > 0 && RECIPIENT_HEADERS.contains(line.substring(0, colon).trim().toLowerCase(Locale.ROOT)));
             }
+            addTokens(line, false, perRecipient ? recipientTokens : tokens);
+            start = end + 1;
+        }
+        addTokens(content.substring(start), false, tokens);
+    }
 
-            in.close();
+    /// Builds the read -> tokenize (-> score) pipeline used for training and classification.
+    private static Scan_Pipeline scanPipeline (final boolean training) {
+        return scanPipeline(training, true);
+    }
+
+    /// As above; 'cached' selects whether the score stage consults the verdict cache.
+    private static Scan_Pipeline scanPipeline (final boolean training, final boolean cached) {
+        Scan_Pipeline pipeline = new Scan_Pipeline(queueDepth)
+            .stage("read", readerThreads, item -> item.content = readMessage(item.file))
+            .stage("tokenize", tokenizerThreads, item -> {
+                if (training) {
+                    item.tokens = tokenize(item.content, true);
+                } else {
+                    item.tokens = new ArrayList<String>();
+                    item.recipientTokens = new ArrayList<String>();
+                    tokenizeMessage(item.content, item.tokens, item.recipientTokens);
+                }
+                item.content = null;
+            });
+
+        if (!training) {
+            pipeline.stage("score", scorerThreads, item -> item.score = cached
+                ? cachedScore(item.tokens, item.recipientTokens)
+                : score(item.tokens, item.recipientTokens));
         }
+        return pipeline;
+    }
+
+    // Read the words from messages and add them to your vocabulary. The boolean type determines whether the messages are regular or not  
+    // Returns the number of messages read.
+    private static int readMessages (final MessageType type)
+    throws IOException
+    {
+        File directory = (type == MessageType.NORMAL) ? directory_regular : directory_spam;
+
+        /// Words are added on this thread only, so the vocabulary needs no extra locking.
+        return scanPipeline(true).run(directory, item -> {
+            for (String word : item.tokens) {
+                addWord(word, type);
+            }
+        });
     }
 
     // List the regular and spam messages
@@ -263,6 +1113,10 @@ public class Bayespam
         // List all files in the directory passed
         File[] dir_listing = dir_location.listFiles();
 
+        if (dir_listing == null) {
+            throw new IOException("Can't list " + dir_location.getName());
+        }
+
         // Check that there are 2 subdirectories
         if ( dir_listing.length != 2 )
         {
@@ -270,16 +1124,18 @@ public class Bayespam
             Runtime.getRuntime().exit(0);
         }
 
-        listing_regular = dir_listing[0].listFiles();
-        listing_spam    = dir_listing[1].listFiles();
-
-        // Verify folders were chosen correctly.
-        if (!(dir_listing[0].getName().equals("regular") && dir_listing[1].getName().equals("spam"))) {
+        // Verify folders were chosen correctly (look them up by name, listFiles() has no defined order).
+        File dir_regular = new File(dir_location, "regular");
+        File dir_spam    = new File(dir_location, "spam");
+        if (!(dir_regular.isDirectory() && dir_spam.isDirectory())) {
             throw new FileNotFoundException("Can't locate regular and spam folders in " + dir_location.getName());
         }
+
+        directory_regular = dir_regular;
+        directory_spam    = dir_spam;
     }
 
-    /// Loads a directory and saves all spam listings to listing_spam and regular listings to listing_regular.
+    /// Loads a directory and saves its spam and regular subdirectories to directory_spam and directory_regular.
     public static void loadDirectory (String directoryPath) throws IOException {
 
         File dir_location = new File(directoryPath);
@@ -293,14 +1149,112 @@ public class Bayespam
         listDirs(dir_location);
     }
 
+    /* ***************************** MODEL IMAGE *****************************/
+
+    /// Writes the model, with its precomputed log probabilities, to a model image. Layout (big endian):
+    /// magic, version, log priors (regular, spam), word count, then per word: UTF-8 length, UTF-8
+    /// bytes, regular count, spam count, regular LCCP, spam LCCP.
+    public static void saveModel (String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+
+        out.writeInt(IMAGE_MAGIC);
+        out.writeInt(IMAGE_VERSION);
+        out.writeDouble(logPrior_regular);
+        out.writeDouble(logPrior_spam);
+        out.writeInt(vocab.size());
+
+        for (Map.Entry<String, Multiple_Counter> entry : vocab.entrySet()) {
+            byte[] word = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            Multiple_Counter counter = entry.getValue();
+
+            out.writeInt(word.length);
+            out.write(word);
+            out.writeInt(counter.counter_regular);
+            out.writeInt(counter.counter_spam);
+            out.writeDouble(counter.getRegularLCCP());
+            out.writeDouble(counter.getSpamLCCP());
+        }
+        out.close();
+    }
+
+    /// Maps a model image written by saveModel() and loads it as the current model. Nothing is
+    /// recounted or recomputed, so this replaces reading the training directory and setCCPs().
+    public static void loadModel (File file) throws IOException {
+        MappedByteBuffer image;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (image.getInt() != IMAGE_MAGIC || image.getInt() != IMAGE_VERSION) {
+                throw new IOException(file.getName() + " is not a model image (or has an older layout)");
+            }
+            logPrior_regular = image.getDouble();
+            logPrior_spam = image.getDouble();
+
+            int n = image.getInt();
+            byte[] word = new byte[64];
+
+            /// Every entry takes at least IMAGE_ENTRY_BYTES, so a larger count can't be genuine.
+            if (n < 0 || n > image.remaining() / IMAGE_ENTRY_BYTES) {
+                throw new IOException(file.getName() + " is a truncated or corrupt model image (" + n + " words)");
+            }
+            vocab = new ConcurrentHashMap <String, Multiple_Counter> (Math.max(16, (int) (n / 0.75f) + 1));
+
+            for (int i = 0; i < n; i++) {
+                Multiple_Counter counter = new Multiple_Counter();
+                int length = image.getInt();
+
+                if (length < 0 || length > image.remaining()) {
+                    throw new IOException(file.getName() + " is a truncated or corrupt model image");
+                }
+                if (length > word.length) {
+                    word = new byte[length];
+                }
+                image.get(word, 0, length);
+                counter.counter_regular = image.getInt();
+                counter.counter_spam = image.getInt();
+                counter.regularLCCP = image.getDouble();
+                counter.spamLCCP = image.getDouble();
+
+                vocab.put(new String(word, 0, length, StandardCharsets.UTF_8), counter);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file.getName() + " is a truncated model image", e);
+        }
+        modelVersion++;
+    }
+
+    /// Milliseconds since launch. Launchers can pass their own start time (epoch millis) in the
+    /// 'bayespam.launched' property to include JVM creation; otherwise the JVM start time is used.
+    private static long millisSinceStart () {
+        String launched = System.getProperty("bayespam.launched");
+
+        if (launched != null) {
+            return System.currentTimeMillis() - Long.parseLong(launched);
+        }
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
     /* ****************************** MAIN ***********************************/
 
     /// Reads in all program flags.
-    /// 1. <dir>        training directory.
-    /// 2. <dir>        test directory.
+    /// 1. <dir|image>  training directory, or a model image written with -m.
+    /// 2. <dir|file>   test directory, or a single message to classify (hook mode).
     /// In any order following 1 and 2.
     /// *. -e=<double>  epsilon.
     /// *. -l=<int>     min word length.
+    /// *. -k=<int>     keep only the top 'k' features.
+    /// *. -g=<double>  keep only features scoring at least 'g'.
+    /// *. -s=ig|chi    feature scoring metric (information gain or chi-square).
+    /// *. -p=<r>,<t>,<s> reader, tokenizer and scorer threads of the scan pipeline.
+    /// *. -q=<int>     queue depth between pipeline stages.
+    /// *. -c=<int>     verdict cache capacity (0 disables the cache).
+    /// *. -x=lru|fifo  verdict cache eviction policy.
+    /// *. -n=<int>     max Hamming distance for near-duplicate cache hits (0 = exact match only).
+    /// *. -o=<prefix>  write per-message scores, ROC curve and summary to <prefix>-*.csv/json.
+    /// *. -m=<file>    write the final model to a model image.
     public static void getArgs (String [] args) throws RuntimeException {
 
         /// Require at minimum both train and test directories.
@@ -326,6 +1280,35 @@ public class Bayespam
                 minWordLength = Integer.parseInt(suffix);
             } else if (prefix.equals("-e=")) {
                 epsilon = Double.parseDouble(suffix);
+            } else if (prefix.equals("-k=")) {
+                maxFeatures = Integer.parseInt(suffix);
+            } else if (prefix.equals("-g=")) {
+                minFeatureScore = Double.parseDouble(suffix);
+            } else if (prefix.equals("-s=") && (suffix.equals("ig") || suffix.equals("chi"))) {
+                featureMetric = suffix;
+            } else if (prefix.equals("-p=") && suffix.split(",").length == 3) {
+                String[] widths = suffix.split(",");
+                readerThreads = Integer.parseInt(widths[0]);
+                tokenizerThreads = Integer.parseInt(widths[1]);
+                scorerThreads = Integer.parseInt(widths[2]);
+            } else if (prefix.equals("-q=")) {
+                queueDepth = Integer.parseInt(suffix);
+                if (queueDepth < 1) {
+                    throw new IllegalArgumentException("Queue depth must be at least 1: " + arg);
+                }
+            } else if (prefix.equals("-c=")) {
+                cacheCapacity = Integer.parseInt(suffix);
+            } else if (prefix.equals("-x=") && (suffix.equals("lru") || suffix.equals("fifo"))) {
+                cacheEviction = suffix;
+            } else if (prefix.equals("-n=")) {
+                cacheDistance = Integer.parseInt(suffix);
+                if (cacheDistance < 0 || cacheDistance >= Verdict_Cache.BANDS) {
+                    throw new IllegalArgumentException("Cache distance must be in [0, " + Verdict_Cache.BANDS + "): " + arg);
+                }
+            } else if (prefix.equals("-o=")) {
+                evaluationPrefix = suffix;
+            } else if (prefix.equals("-m=")) {
+                modelImagePath = suffix;
             } else {
                 throw new IllegalArgumentException("Unknown argument: " + arg);
             }
@@ -338,39 +1321,97 @@ public class Bayespam
         /// Load arguments.
         getArgs(args);
 
+        /// A single test message is classified with minimal output, e.g. from a mail hook.
+        boolean hookMode = new File(testPath).isFile();
+
         // Print program parameters.
-        System.out.println("**************************** UNIGRAM SPAM CLASSIFIER ***************************\n");
-        System.out.println("Minimum Word Length:\t\t" + minWordLength);
-        System.out.println("Epsilon:\t\t\t" + epsilon);
-        System.out.println("*********************************** RESULTS ************************************\n");
+        if (!hookMode) {
+            System.out.println("**************************** UNIGRAM SPAM CLASSIFIER ***************************\n");
+            System.out.println("Minimum Word Length:\t\t" + minWordLength);
+            System.out.println("Epsilon:\t\t\t" + epsilon);
+            System.out.println("Pipeline Threads:\t\t" + readerThreads + " read, " + tokenizerThreads + " tokenize, " +
+                               scorerThreads + " score (queue depth " + queueDepth + ")");
+            if (maxFeatures > 0 || minFeatureScore > 0) {
+                System.out.println("Feature Selection:\t\t" + featureMetric + ", top " + maxFeatures + ", min score " + minFeatureScore);
+            }
+            if (cacheCapacity > 0) {
+                System.out.println("Verdict Cache:\t\t\t" + cacheCapacity + " entries, " + cacheEviction + ", distance " + cacheDistance);
+            }
+            System.out.println("*********************************** RESULTS ************************************\n");
+        }
+        if (cacheCapacity > 0) {
+            verdictCache = new Verdict_Cache(cacheCapacity, cacheEviction, cacheDistance);
+        }
 
-        /// Loading the training directory.
-        loadDirectory(trainPath);
+        long modelStart = System.nanoTime();
 
-        /// Compute prior probabilities now that directory contents are loaded.
-        double nregular         = listing_regular.length;
-        double nspam            = listing_spam.length;
-        double ntotal           = nregular + nspam;
-        logPrior_regular        = Math.log10(nregular) - Math.log10(ntotal);
-        logPrior_spam           = Math.log10(nspam) - Math.log10(ntotal);
+        if (new File(trainPath).isFile()) {
 
-        // Read the e-mail messages
-        readMessages(MessageType.NORMAL);
-        readMessages(MessageType.SPAM);
+            /// Map a precomputed model image.
+            loadModel(new File(trainPath));
+        } else {
+
+            /// Loading the training directory.
+            loadDirectory(trainPath);
+
+            // Read the e-mail messages
+            double nregular         = readMessages(MessageType.NORMAL);
+            double nspam            = readMessages(MessageType.SPAM);
 
+            /// Compute prior probabilities now that the messages are counted.
+            double ntotal           = nregular + nspam;
+            logPrior_regular        = Math.log10(nregular) - Math.log10(ntotal);
+            logPrior_spam           = Math.log10(nspam) - Math.log10(ntotal);
 
-        /// Set all class conditional probabilities.
-        setCCPs();
+            /// Set all class conditional probabilities.
+            setCCPs();
+        }
+        long modelMillis = (System.nanoTime() - modelStart) / 1000000;
+
+        /// Classify the single message and report how long the first verdict took, and how much
+        /// of that went into loading (decoding or training) the model.
+        if (hookMode) {
+            double score = cachedScore(readMessage(new File(testPath)));
+            System.out.println(verdict(score) + " " + score);
+            System.err.println("Time to first verdict: " + millisSinceStart() + " ms");
+            System.err.println("Model load: " + modelMillis + " ms");
+
+            if (modelImagePath != null) {
+                saveModel(modelImagePath);
+            }
+            return;
+        }
 
-        /// Loading the testing directory.
+        /// Loading the test directory.
         loadDirectory(testPath);
-		
-	/// Loading the test directory.
-        loadDirectory(args[1]);
-	
-        /// Count classifications of files in both spam and regular.
-        directoryClassifier(MessageType.NORMAL);
-        directoryClassifier(MessageType.SPAM);
-	System.out.println("Number of unique words: " + vocab.size());
+
+        /// Without selection, count classifications of files in both spam and regular.
+        if (maxFeatures <= 0 && minFeatureScore <= 0) {
+            try (Evaluation evaluation = new Evaluation(evaluationPrefix)) {
+                directoryClassifier(MessageType.NORMAL, evaluation);
+                directoryClassifier(MessageType.SPAM, evaluation);
+                evaluation.finish();
+            }
+            System.out.println("Number of unique words: " + vocab.size());
+        } else {
+            /// Otherwise compare the full model against the selected one.
+            double accuracyBefore = evaluateModel("before");
+            ConcurrentHashMap <String, Multiple_Counter> full = copyVocab();
+
+            selectFeatures(maxFeatures, minFeatureScore);
+            setCCPs();
+            double accuracyAfter = evaluateModel("after");
+
+            double[] throughput = compareThroughput(full, vocab);
+            reportModel("Before feature selection", full.size(), throughput[0], accuracyBefore);
+            reportModel("After feature selection", vocab.size(), throughput[1], accuracyAfter);
+        }
+
+        if (verdictCache != null) {
+            verdictCache.printStats();
+        }
+        if (modelImagePath != null) {
+            saveModel(modelImagePath);
+        }
     }
 }
@@ -1,5 +1,8 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class BigramBayespam
 {
@@ -56,6 +59,19 @@ public class BigramBayespam
             return this.spamLCCP;
         }
 
+        /// Returns an independent copy of this counter, probabilities included.
+        public Multiple_Counter copy () {
+            Multiple_Counter copy = new Multiple_Counter();
+
+            copy.counter_spam = counter_spam;
+            copy.counter_regular = counter_regular;
+            copy.regularCCP = regularCCP;
+            copy.spamCCP = spamCCP;
+            copy.regularLCCP = regularLCCP;
+            copy.spamLCCP = spamLCCP;
+            return copy;
+        }
+
         // Increase one of the counters by one
         public void incrementCounter(MessageType type)
         {
@@ -76,6 +92,17 @@ public class BigramBayespam
     static double epsilon          = 1;
     static int minBigramCount      = 2;
 
+    /// Feature selection (disabled unless a feature count or score threshold is given).
+    static int maxFeatures         = 0;
+    static double minFeatureScore  = 0;
+    static String featureMetric    = "ig";
+
+    /// Minimum untimed warm-up and timed passes (count and duration) of a throughput comparison.
+    static final int WARMUP_RUNS   = 4;
+    static final int TIMED_RUNS    = 5;
+    static final long WARMUP_NANOS = 1000000000L;
+    static final long TIMED_NANOS  = 2000000000L;
+
     // Listings of the two subdirectories (regular/ and spam/)
     private static File[] listing_regular = new File[0];
     private static File[] listing_spam = new File[0];
@@ -123,6 +150,52 @@ public class BigramBayespam
         return n;
     }
 
+    /* **************************** NORMALIZATION ****************************/
+
+    /// Tokens are normalized identically on every host, whatever its default locale: NFKC, then
+    /// case folding, then NFKC again as folding may leave unnormalized sequences. Folding is
+    /// approximated by upper, then lower casing in the root locale (so e.g. U+00DF sharp s becomes
+    /// "ss"), plus mapping final sigma to sigma, which lower casing alone keeps at word ends.
+    private static final Locale TOKEN_LOCALE = Locale.ROOT;
+
+    /// Lower case variant of every ASCII char, and whether it is a letter.
+    private static final char[] ASCII_LOWER = new char[128];
+    private static final boolean[] ASCII_LETTER = new boolean[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            ASCII_LOWER[c] = (c >= 'A' && c <= 'Z') ? (char) (c - 'A' + 'a') : c;
+            ASCII_LETTER[c] = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+        }
+    }
+
+    /// Normalizes a token. Pure ASCII tokens are lower cased through the table alone; the
+    /// full Unicode path is only taken once a non-ASCII char shows up.
+    public static String normalize (String token) {
+        char[] chars = token.toCharArray();
+        boolean changed = false;
+
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 128) {
+                return foldUnicode(token);
+            }
+            if (ASCII_LOWER[c] != c) {
+                chars[i] = ASCII_LOWER[c];
+                changed = true;
+            }
+        }
+        return changed ? new String(chars) : token;
+    }
+
+    /// Unicode path of normalize().
+    private static String foldUnicode (String token) {
+        String folded = Normalizer.normalize(token, Normalizer.Form.NFKC);
+
+        folded = folded.toUpperCase(TOKEN_LOCALE).toLowerCase(TOKEN_LOCALE).replace('\u03c2', '\u03c3');
+        return Normalizer.normalize(folded, Normalizer.Form.NFKC);
+    }
+
     /* ************************** CCP/VALIDATION *****************************/
 
         /// Sets all class conditional probabilities.
@@ -139,21 +212,47 @@ public class BigramBayespam
         }
     }
 
+    /// Whether a code point is a combining mark (e.g. the U+0307 dot above that a capital dotted I
+    /// lower cases to), which may follow a letter within a word.
+    private static boolean isCombiningMark (int c) {
+        int type = Character.getType(c);
+
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK ||
+               type == Character.ENCLOSING_MARK;
+    }
+
     /// Returns True if the word
-    /// 1. Has length >= 4
-    /// 2. Is only composed of letters.
+    /// 1. Has length >= 4 (in letters, combining marks don't count)
+    /// 2. Is only composed of letters, each optionally followed by combining marks.
     private static Boolean isValidWord (String word) {
-        int i, n;
+        int i, n, letters, point;
+        char c;
 
+        /// A word is never shorter in UTF-16 chars than in letters.
         if ((n = word.length()) < minWordLength) {
             return false;
         }
-        for (i = 0; i < n; i++) {
-            if (Character.isLetter(word.charAt(i)) == false) {
+
+        /// ASCII prefix, checked through the table.
+        for (i = 0; i < n && (c = word.charAt(i)) < 128; i++) {
+            if (ASCII_LETTER[c] == false) {
                 return false;
             }
         }
-        return true;
+        if (i == n) {
+            return true;
+        }
+
+        /// Otherwise check the remaining code points, so supplementary letters count once.
+        for (letters = i; i < n; i += Character.charCount(point)) {
+            point = word.codePointAt(i);
+            if (Character.isLetter(point)) {
+                letters++;
+            } else if (letters == 0 || !isCombiningMark(point)) {
+                return false;
+            }
+        }
+        return letters >= minWordLength;
     }
 
     /// Filters all bigrams in the hash table that occur less than 'n' times.
@@ -167,13 +266,135 @@ public class BigramBayespam
         }
     }
 
+    /* ************************* FEATURE SELECTION ***************************/
+
+    /// Information gain (mutual information, in bits) between the presence of a bigram
+    /// and the message class. Every counted bigram is treated as one sample.
+    private static double informationGain (Multiple_Counter counter, double nregular, double nspam) {
+        double n = nregular + nspam;
+        double a = counter.counter_regular, b = counter.counter_spam;   /// Bigram present.
+        double c = nregular - a, d = nspam - b;                         /// Bigram absent.
+
+        return mutualTerm(a, a + b, nregular, n) + mutualTerm(b, a + b, nspam, n) +
+               mutualTerm(c, c + d, nregular, n) + mutualTerm(d, c + d, nspam, n);
+    }
+
+    /// A single cell of the mutual information sum: p(f,c) * log2(p(f,c) / (p(f) * p(c))).
+    private static double mutualTerm (double joint, double feature, double type, double n) {
+        if (joint == 0) {
+            return 0;
+        }
+        return (joint / n) * (Math.log((n * joint) / (feature * type)) / Math.log(2));
+    }
+
+    /// Chi-square statistic of the 2x2 bigram/class contingency table.
+    private static double chiSquare (Multiple_Counter counter, double nregular, double nspam) {
+        double n = nregular + nspam;
+        double a = counter.counter_regular, b = counter.counter_spam;
+        double c = nregular - a, d = nspam - b;
+        double denominator = (a + b) * (c + d) * nregular * nspam;
+
+        if (denominator == 0) {
+            return 0;
+        }
+        return n * (a * d - b * c) * (a * d - b * c) / denominator;
+    }
+
+    /// Ranks all bigrams by the selected metric and removes those outside the top 'maxFeatures'
+    /// (if > 0) or scoring below 'minScore'. Scores are computed in parallel.
+    public static void selectFeatures (int maxFeatures, double minScore) {
+        final double nregular = bigramCount(MessageType.NORMAL);
+        final double nspam = bigramCount(MessageType.SPAM);
+        final boolean chi = featureMetric.equals("chi");
+
+        final List<String> bigrams = new ArrayList<String>(vocab.keySet());
+        final double[] scores = new double[bigrams.size()];
+        Integer[] order = new Integer[bigrams.size()];
+
+        /// Score every bigram.
+        IntStream.range(0, scores.length).parallel().forEach(i -> {
+            Multiple_Counter counter = vocab.get(bigrams.get(i));
+            scores[i] = chi ? chiSquare(counter, nregular, nspam) : informationGain(counter, nregular, nspam);
+        });
+
+        /// Rank bigrams by descending score.
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Double.compare(scores[y], scores[x]));
+
+        /// Drop everything below the cut.
+        int keep = (maxFeatures > 0) ? Math.min(maxFeatures, order.length) : order.length;
+        for (int i = 0; i < order.length; i++) {
+            if (i >= keep || scores[order[i]] < minScore) {
+                vocab.remove(bigrams.get(order[i]));
+            }
+        }
+    }
+
+    /// Measures the classification throughput (messages/s) of two models over the test directory.
+    /// Passes alternate between the models, so JIT warm-up and other drift during the run weigh
+    /// on both alike; untimed warm-up passes of both run first.
+    public static double[] compareThroughput (Hashtable <String, Multiple_Counter> first, Hashtable <String, Multiple_Counter> second) throws IOException {
+        Hashtable <String, Multiple_Counter> current = vocab;
+        int nfiles = listing_regular.length + listing_spam.length, runs;
+        long[] nanos = new long[2];
+        long start;
+
+        try {
+            start = System.nanoTime();
+            for (runs = 0; runs < WARMUP_RUNS || System.nanoTime() - start < WARMUP_NANOS; runs++) {
+                vocab = (runs % 2 == 0) ? first : second;
+                classifyTestMessages();
+            }
+
+            for (runs = 0; runs < 2 * TIMED_RUNS || nanos[0] + nanos[1] < TIMED_NANOS; runs++) {
+                vocab = (runs % 2 == 0) ? first : second;
+                start = System.nanoTime();
+                classifyTestMessages();
+                nanos[runs % 2] += System.nanoTime() - start;
+            }
+        } finally {
+            vocab = current;
+        }
+        return new double[] { (runs + 1) / 2 * nfiles / (nanos[0] / 1e9), runs / 2 * nfiles / (nanos[1] / 1e9) };
+    }
+
+    /// Returns a copy of the vocabulary that later changes to the model don't affect.
+    private static Hashtable <String, Multiple_Counter> copyVocab () {
+        Hashtable <String, Multiple_Counter> copy = new Hashtable <String, Multiple_Counter> (vocab.size() * 4 / 3 + 1);
+
+        for (Map.Entry<String, Multiple_Counter> entry : vocab.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    /// Prints model size, throughput and accuracy of one model.
+    private static void reportModel (String label, int features, double throughput, int correct) {
+        int nfiles = listing_regular.length + listing_spam.length;
+
+        System.out.println(label + ": " + features + " bigrams, " +
+                           String.format(Locale.ROOT, "%.1f", throughput) + " messages/s, accuracy " +
+                           String.format(Locale.ROOT, "%.2f", 100.0 * correct / nfiles) + "%");
+    }
+
+    /// Classifies all test messages, discarding the results.
+    private static void classifyTestMessages () throws IOException {
+        for (File file : listing_regular) {
+            classify(file);
+        }
+        for (File file : listing_spam) {
+            classify(file);
+        }
+    }
 
     /* *************************** CLASSIFICATION ****************************/
 
     /// Classifies new messages as either Normal or Spam.
     public static MessageType classify (File file) throws IOException {
         FileInputStream i_s = new FileInputStream(file);
-        BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
+        BufferedReader in = new BufferedReader(new InputStreamReader(i_s, StandardCharsets.UTF_8));
         String line, word, lastword = null, bigram;
 
         double posterior_spam = logPrior_spam, posterior_regular = logPrior_regular;
@@ -186,12 +407,12 @@ public class BigramBayespam
 
                 /// Get first word.
                 if (lastword == null) {
-                    lastword = st.nextToken();
+                    lastword = normalize(st.nextToken());
                     continue;
                 }
                 /// Get next word, create bigram.
-                word = st.nextToken();
-                bigram = (lastword + " " + word).toLowerCase();
+                word = normalize(st.nextToken());
+                bigram = lastword + " " + word;
 
                 /// Increment posterior probabilities if bigram in table.
                 if (vocab.containsKey(bigram)) {
@@ -208,8 +429,9 @@ public class BigramBayespam
         return (posterior_regular > posterior_spam ? MessageType.NORMAL : MessageType.SPAM);
     }
 
-        /// Determines the ratio of email classifications for files in a given directory. 
-    public static void directoryClassifier (MessageType type) throws IOException {
+        /// Determines the ratio of email classifications for files in a given directory.
+        /// Returns the number of files that were classified as the given type.
+    public static int directoryClassifier (MessageType type) throws IOException {
         int spam = 0, regular = 0;
 
         /// Create list of all files in directory.
@@ -227,6 +449,8 @@ public class BigramBayespam
         /// Print ratio.
         String listingType = (type == MessageType.SPAM) ? "Spam" : "Regular";
         System.out.println(listingType + " has " + spam + " spam files and " + regular + " regular ones.");
+
+        return (type == MessageType.SPAM) ? spam : regular;
     }
 
     /* ************************* VOCAB CONSTRUCTION **************************/
@@ -258,7 +482,7 @@ public class BigramBayespam
         for (int i = 0; i < messages.length; ++i)
         {
             FileInputStream i_s = new FileInputStream( messages[i] );
-            BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
+            BufferedReader in = new BufferedReader(new InputStreamReader(i_s, StandardCharsets.UTF_8));
             String line;
             String lastword = null, word;                                      /// lastword and word are initialized to null.
             
@@ -271,13 +495,13 @@ public class BigramBayespam
 
                     /* Search for a valid initial word */
                     if (lastword == null || isValidWord(lastword) == false) {
-                        lastword = st.nextToken();
+                        lastword = normalize(st.nextToken());
                         continue;
                     }
 
                     /* Create a bigram with the last valid word and new. Then set old to new. */
-                    if (isValidWord((word = st.nextToken()))) {         
-                        addBigram(lastword.toLowerCase() + " " + word.toLowerCase(), type);
+                    if (isValidWord((word = normalize(st.nextToken())))) {
+                        addBigram(lastword + " " + word, type);
                     }
 
                     lastword = word;
@@ -302,13 +526,15 @@ public class BigramBayespam
             Runtime.getRuntime().exit(0);
         }
 
-        listing_regular = dir_listing[0].listFiles();
-        listing_spam    = dir_listing[1].listFiles();
-
-        // Verify folders were chosen correctly.
-        if (!(dir_listing[0].getName().equals("regular") && dir_listing[1].getName().equals("spam"))) {
+        // Verify folders were chosen correctly (look them up by name, listFiles() has no defined order).
+        File dir_regular = new File(dir_location, "regular");
+        File dir_spam    = new File(dir_location, "spam");
+        if (!(dir_regular.isDirectory() && dir_spam.isDirectory())) {
             throw new FileNotFoundException("Can't locate regular and spam folders in " + dir_location.getName());
         }
+
+        listing_regular = dir_regular.listFiles();
+        listing_spam    = dir_spam.listFiles();
     }
 
     /// Loads a directory and saves all spam listings to listing_spam and regular listings to listing_regular.
@@ -334,6 +560,9 @@ public class BigramBayespam
     /// *. -e=<double>  epsilon.
     /// *. -b=<int>     min bigram count.
     /// *. -l=<int>     min word length.
+    /// *. -k=<int>     keep only the top 'k' bigrams.
+    /// *. -g=<double>  keep only bigrams scoring at least 'g'.
+    /// *. -s=ig|chi    bigram scoring metric (information gain or chi-square).
     public static void getArgs (String [] args) throws RuntimeException {
 
         /// Require at minimum both train and test directories.
@@ -361,6 +590,12 @@ public class BigramBayespam
                 minWordLength = Integer.parseInt(suffix);
             } else if (prefix.equals("-e=")) {
                 epsilon = Double.parseDouble(suffix);
+            } else if (prefix.equals("-k=")) {
+                maxFeatures = Integer.parseInt(suffix);
+            } else if (prefix.equals("-g=")) {
+                minFeatureScore = Double.parseDouble(suffix);
+            } else if (prefix.equals("-s=") && (suffix.equals("ig") || suffix.equals("chi"))) {
+                featureMetric = suffix;
             } else {
                 throw new IllegalArgumentException("Unknown argument: " + arg);
             }
@@ -378,6 +613,9 @@ public class BigramBayespam
         System.out.println("Minimum Word Length:\t\t" + minWordLength);
         System.out.println("Epsilon:\t\t\t" + epsilon);
         System.out.println("Minimum Bigram Threshold:\t" + minBigramCount + "\n");
+        if (maxFeatures > 0 || minFeatureScore > 0) {
+            System.out.println("Feature Selection:\t\t" + featureMetric + ", top " + maxFeatures + ", min score " + minFeatureScore + "\n");
+        }
         System.out.println("*********************************** RESULTS ************************************\n");
 
         /// Loading the training directory.
@@ -405,8 +643,24 @@ public class BigramBayespam
 
         System.out.println("There are " + vocab.size() + " unique bigrams.");
 
-        /// Count classifications of files in both spam and regular.
-        directoryClassifier(MessageType.NORMAL);
-        directoryClassifier(MessageType.SPAM);
+        /// Without selection, count classifications of files in both spam and regular.
+        if (maxFeatures <= 0 && minFeatureScore <= 0) {
+            directoryClassifier(MessageType.NORMAL);
+            directoryClassifier(MessageType.SPAM);
+            return;
+        }
+
+        /// Otherwise compare the full model against the selected one.
+        int correctBefore = directoryClassifier(MessageType.NORMAL) + directoryClassifier(MessageType.SPAM);
+        Hashtable <String, Multiple_Counter> full = copyVocab();
+
+        selectFeatures(maxFeatures, minFeatureScore);
+        setCCPs(epsilon);
+        int correctAfter = directoryClassifier(MessageType.NORMAL) + directoryClassifier(MessageType.SPAM);
+
+        double[] throughput = compareThroughput(full, vocab);
+        System.out.println();
+        reportModel("Before feature selection", full.size(), throughput[0], correctBefore);
+        reportModel("After feature selection", vocab.size(), throughput[1], correctAfter);
     }
 }
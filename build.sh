@@ -0,0 +1,147 @@
+#!/usr/bin/env bash
+#
+# Builds the classifiers and the artifacts of the startup-optimized launch mode.
+#
+#   ./build.sh [build] [train-dir]    compile to build/bayespam.jar, write build/model.img
+#                                     and build/bayespam.jsa
+#   ./build.sh run <message>          classify one message in startup-optimized mode
+#   ./build.sh bench [runs] [message] compare time-to-first-verdict, and the model load
+#                                     within it, of a cold start and the startup-optimized mode
+#   ./build.sh check                  check that a copy of a message differing only in
+#                                     recipient and date hits the verdict cache, that one
+#                                     with another subject does not, and that hits score
+#                                     the same as scoring again
+#
+# The model image holds the trained vocabulary with precomputed log probabilities, so a
+# run maps it instead of reading the training directory. The AppCDS archive holds the
+# classes a single classification loads, so they are mapped instead of parsed and verified.
+
+set -e
+
+DIR="$(cd "$(dirname "$0")" && pwd)"
+BUILD="$DIR/build"
+CLASSES="$BUILD/classes"
+JAR="$BUILD/bayespam.jar"
+MODEL="$BUILD/model.img"
+ARCHIVE="$BUILD/bayespam.jsa"
+TRAIN="$DIR/train"
+TEST="$DIR/test"
+
+# Short-lived JVM: C1 only and the serial collector start fastest.
+FAST_OPTS="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto"
+
+now () {
+    date +%s%3N
+}
+
+build () {
+    local train="${1:-$TRAIN}"
+    local sample
+
+    # A message outside the training set, so the recorded run is a realistic one.
+    sample="$(ls "$TEST"/spam/* | head -n 1)"
+
+    rm -rf "$BUILD"
+    mkdir -p "$CLASSES"
+    javac -d "$CLASSES" "$DIR"/Bayespam.java "$DIR"/BigramBayespam.java
+    jar cf "$JAR" -C "$CLASSES" .           # AppCDS only archives classes loaded from jars.
+
+    # Train once and save the model image.
+    java -cp "$JAR" Bayespam "$train" "$sample" -m="$MODEL" > /dev/null 2>&1
+
+    # Record the classes of a startup-mode run into the archive.
+    java $FAST_OPTS -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$JAR" \
+        Bayespam "$MODEL" "$sample" > /dev/null 2>&1
+
+    echo "Built $JAR, $MODEL ($(wc -c < "$MODEL") bytes) and $ARCHIVE."
+}
+
+run () {
+    exec java $FAST_OPTS -XX:SharedArchiveFile="$ARCHIVE" -Dbayespam.launched="$(now)" \
+        -cp "$JAR" Bayespam "$MODEL" "$@"
+}
+
+# Prints the mean wall time of 'runs' hook runs of the given command, and the mean time they
+# report for loading the model.
+measure () {
+    local runs="$1" start total=0 load=0 i log
+    shift
+
+    log="$(mktemp)"
+    for ((i = 0; i < runs; i++)); do
+        start="$(now)"
+        "$@" > /dev/null 2> "$log"
+        total=$((total + $(now) - start))
+        load=$((load + $(sed -n 's/^Model load: \([0-9]*\) ms$/\1/p' "$log")))
+    done
+    rm -f "$log"
+    echo "$((total / runs)) $((load / runs))"
+}
+
+bench () {
+    local runs="${1:-10}"
+    local message="${2:-$(ls "$TEST"/spam/* | head -n 1)}"
+    local cold cold_load fast fast_load
+
+    [ -f "$MODEL" ] && [ -f "$ARCHIVE" ] || build
+
+    read -r cold cold_load < <(measure "$runs" java -cp "$JAR" Bayespam "$TRAIN" "$message")
+    read -r fast fast_load < <(measure "$runs" java $FAST_OPTS -XX:SharedArchiveFile="$ARCHIVE" \
+                                                  -cp "$JAR" Bayespam "$MODEL" "$message")
+
+    # A hook run exits right after its verdict, so wall time is the time to first verdict.
+    # The model load is the part of it spent training, or decoding the image.
+    echo "Time to first verdict (of which model load), mean of $runs runs on $message:"
+    echo "  cold start (train from directory):  $cold ms ($cold_load ms)"
+    echo "  startup mode (image + AppCDS):      $fast ms ($fast_load ms)"
+}
+
+check () {
+    local message="$TEST/spam/spam-1001.msg"
+    local work corpus hits
+
+    [ -f "$JAR" ] || build
+
+    work="$(mktemp -d)"
+    trap 'rm -rf "$work"' RETURN
+    corpus="$work/corpus"
+    mkdir -p "$corpus/regular" "$corpus/spam"
+
+    # One copy differs only in its per-recipient headers and must hit the cache; the other
+    # differs in its Subject: as well and must not.
+    cp "$message" "$corpus/spam/original.msg"
+    sed -e '1s/^From \([^ ]*\) .*/From \1 Mon Jan  1 12:00:00 2024/' \
+        -e 's/^To: .*/To: someone.else@example.org/' \
+        -e 's/^Date: .*/Date: Mon, 01 Jan 2024 12:00:00 +0000/' "$message" > "$corpus/spam/copy.msg"
+    sed -e 's/^Subject: .*/Subject: Minutes of the last meeting/' "$corpus/spam/copy.msg" > "$corpus/spam/subject.msg"
+    if cmp -s "$corpus/spam/original.msg" "$corpus/spam/copy.msg" ||
+       cmp -s "$corpus/spam/copy.msg" "$corpus/spam/subject.msg"; then
+        echo "check: $message lacks a To:, Date: or Subject: header to change" >&2
+        return 1
+    fi
+
+    hits="$(java -cp "$JAR" Bayespam "$TRAIN" "$corpus" -c=16 -p=1,1,1 -o="$work/cached" |
+            sed -n 's/^Verdict cache: .*, \([0-9]*\) hits,.*/\1/p')"
+    if [ "$hits" != "1" ]; then
+        echo "check: expected exactly 1 verdict cache hit (the copy with another recipient and date," >&2
+        echo "       not the one with another subject), got '$hits'" >&2
+        return 1
+    fi
+
+    # A cache hit must give the very score that scoring the message again gives.
+    java -cp "$JAR" Bayespam "$TRAIN" "$corpus" -p=1,1,1 -o="$work/scored" > /dev/null
+    if ! cmp -s "$work/cached-messages.csv" "$work/scored-messages.csv"; then
+        echo "check: scores with the verdict cache differ from scores without it:" >&2
+        diff "$work/scored-messages.csv" "$work/cached-messages.csv" >&2
+        return 1
+    fi
+    echo "check: only the copy with another recipient and date hit the verdict cache, with the same score"
+}
+
+case "${1:-build}" in
+    build) shift || true; build "$@" ;;
+    run)   shift; run "$@" ;;
+    bench) shift; bench "$@" ;;
+    check) shift; check "$@" ;;
+    *)     build "$@" ;;
+esac